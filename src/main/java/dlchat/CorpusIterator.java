@@ -3,6 +3,7 @@ package dlchat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.nd4j.linalg.api.ndarray.INDArray;
@@ -23,6 +24,10 @@ public class CorpusIterator implements MultiDataSetIterator {
      * 
      * Macrobatch is a group of minibatches. The iterator is modified so that it reports the end of data when it exhausts a macrobatch. Then
      * it advances (manually) to the next macrobatch.
+     * 
+     * The line pairs (line i is the input, line i + 1 is the expected response) are visited in the order defined by a permutation of pair
+     * indexes. It's rebuilt for every epoch from the run seed and the epoch number so the corpus itself is never copied or reordered, the
+     * overhead is one int per pair and the same seed, epoch and batch number always produce exactly the same batches.
      */
 
     private List<List<Double>> corpus;
@@ -34,15 +39,36 @@ public class CorpusIterator implements MultiDataSetIterator {
     private int currentMacroBatch = 0;
     private int dictSize;
     private int rowSize;
+    private long seed;
+    private int epoch = 0;
+    private int[] order;
+    private MultiDataSetPreProcessor preProcessor;
 
-    public CorpusIterator(List<List<Double>> corpus, int batchSize, int batchesPerMacrobatch, int dictSize, int rowSize) {
+    public CorpusIterator(List<List<Double>> corpus, int batchSize, int batchesPerMacrobatch, int dictSize, int rowSize, long seed) {
         this.corpus = corpus;
         this.batchSize = batchSize;
         this.batchesPerMacrobatch = batchesPerMacrobatch;
         this.dictSize = dictSize;
         this.rowSize = rowSize;
-        totalBatches = (int) Math.ceil((double) corpus.size() / batchSize);
+        this.seed = seed;
+        order = new int[Math.max(0, corpus.size() - 1)];
+        totalBatches = (int) Math.ceil((double) order.length / batchSize);
         totalMacroBatches = (int) Math.ceil((double) totalBatches / batchesPerMacrobatch);
+        shuffle();
+    }
+
+    private void shuffle() {
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = i;
+        }
+        // the permutation depends only on the seed and the epoch, not on the previous epochs, so any epoch can be restored directly
+        Random random = new Random(seed * 31 + epoch);
+        for (int i = order.length - 1; i > 0; --i) {
+            int j = random.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
     }
 
     @Override
@@ -62,10 +88,11 @@ public class CorpusIterator implements MultiDataSetIterator {
     @Override
     public MultiDataSet next(int num) {
         int i = currentBatch * batchSize;
-        int currentBatchSize = Math.min(batchSize, corpus.size() - i - 1);
+        int currentBatchSize = Math.min(batchSize, order.length - i);
         int sequenceLength = 0;
-        for (int j = 0; j <= currentBatchSize; ++j) {
-            int size = corpus.get(i + j).size();
+        for (int j = 0; j < currentBatchSize; ++j) {
+            int pair = order[i + j];
+            int size = Math.max(corpus.get(pair).size(), corpus.get(pair + 1).size());
             if (size > sequenceLength) {
                 sequenceLength = size;
             }
@@ -78,9 +105,10 @@ public class CorpusIterator implements MultiDataSetIterator {
         // this mask is also used for the decoder input, the length is the same
         INDArray predictionMask = Nd4j.zeros(currentBatchSize, sequenceLength);
         for (int j = 0; j < currentBatchSize; ++j) {
-            List<Double> rowIn = new ArrayList<>(corpus.get(i));
+            int pair = order[i];
+            List<Double> rowIn = new ArrayList<>(corpus.get(pair));
             Collections.reverse(rowIn);
-            List<Double> rowPred = new ArrayList<>(corpus.get(i + 1));
+            List<Double> rowPred = new ArrayList<>(corpus.get(pair + 1));
             rowPred.add(1.0); // add <eos> token
             // replace the entire row in "input" using NDArrayIndex, it's faster than putScalar(); input is NOT made of one-hot vectors
             // because of the embedding layer that accepts token indexes directly
@@ -109,13 +137,17 @@ public class CorpusIterator implements MultiDataSetIterator {
             ++i;
         }
         ++currentBatch;
-        return new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { input, decode }, new INDArray[] { prediction },
+        MultiDataSet result = new org.nd4j.linalg.dataset.MultiDataSet(new INDArray[] { input, decode }, new INDArray[] { prediction },
                 new INDArray[] { inputMask, predictionMask }, new INDArray[] { predictionMask });
+        if (preProcessor != null) {
+            preProcessor.preProcess(result);
+        }
+        return result;
     }
 
     @Override
     public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
-
+        this.preProcessor = preProcessor;
     }
 
     @Override
@@ -144,6 +176,25 @@ public class CorpusIterator implements MultiDataSetIterator {
         return totalBatches;
     }
 
+    public int epoch() {
+        return epoch;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    /**
+     * Rebuilds the pair order for the given epoch, the batch position is left intact. Call {@link #reset()} or
+     * {@link #setCurrentBatch(int)} afterwards.
+     */
+    public void setEpoch(int epoch) {
+        if (this.epoch != epoch) {
+            this.epoch = epoch;
+            shuffle();
+        }
+    }
+
     public void setCurrentBatch(int currentBatch) {
         this.currentBatch = currentBatch;
         currentMacroBatch = getMacroBatchByCurrentBatch();
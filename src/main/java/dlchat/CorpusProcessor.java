@@ -6,6 +6,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
 import java.nio.charset.StandardCharsets;
 import java.util.Collection;
 import java.util.HashMap;
@@ -15,6 +16,8 @@ import java.util.Map;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+import org.apache.commons.io.input.BoundedInputStream;
+
 public class CorpusProcessor {
     public static final String SPECIALS = "!\"#$;%^:?*()[]{}<>«»,.–—=+…";
     private Set<String> dictSet = new HashSet<>();
@@ -32,6 +35,40 @@ public class CorpusProcessor {
         this(new FileInputStream(filename), rowSize, countFreq);
     }
 
+    // process only the bytes from offset (inclusive) to end (exclusive), both should point to the beginning of a line
+    public CorpusProcessor(String filename, long offset, long end, int rowSize, boolean countFreq) throws IOException {
+        this(new FileInputStream(filename), rowSize, countFreq);
+        if (is.skip(offset) != offset) {
+            is.close();
+            throw new IOException("Can't skip to offset " + offset + " of " + filename);
+        }
+        is = new BoundedInputStream(is, end - offset);
+    }
+
+    /**
+     * Returns the position right after the last line break in the file before the specified length, or offset if there's none after it.
+     * The file could be appended while it's being processed, the last line might be incomplete at the moment so it should wait for the
+     * next time.
+     */
+    public static long lastLineEnd(String filename, long offset, long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r")) {
+            byte[] buf = new byte[8192];
+            long pos = length;
+            while (pos > offset) {
+                int size = (int) Math.min(buf.length, pos - offset);
+                pos -= size;
+                file.seek(pos);
+                file.readFully(buf, 0, size);
+                for (int i = size - 1; i >= 0; --i) {
+                    if (buf[i] == '\n') {
+                        return pos + i + 1;
+                    }
+                }
+            }
+        }
+        return offset;
+    }
+
     public CorpusProcessor(InputStream is, int rowSize, boolean countFreq) {
         this.is = is;
         this.rowSize = rowSize;
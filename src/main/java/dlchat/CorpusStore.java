@@ -0,0 +1,207 @@
+package dlchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+
+public class CorpusStore {
+
+    /*
+     * Keeps the processed corpus on disk so that the lines appended to the source file later don't require processing everything again.
+     * There are four files: the dictionary (one token per line, the line number is the token index), the frequency table of all tokens
+     * ever seen (including those that didn't fit the dictionary), the packed corpus (line length followed by token indexes, all ints) and
+     * the properties file with the number of source bytes processed, the dictionary capacity and the number and size of packed lines.
+     *
+     * An update is committed by renaming the new properties file into place. The dictionary and the frequency table are written to
+     * temporary files before that and renamed after that. If the process is killed before the commit, the temporary files are removed, the
+     * extra packed lines are ignored and the same source bytes are processed again on the next start. If it's killed after the commit, the
+     * remaining temporary files are renamed on the next start. Either way the counts are never added twice.
+     */
+
+    private String dictFilename;
+    private String freqFilename;
+    private String corpusFilename;
+    private String stateFilename;
+    private long sourceOffset;
+    private int capacity;
+    private int lines;
+    private long packedBytes;
+
+    public CorpusStore(String dictFilename, String freqFilename, String corpusFilename, String stateFilename) {
+        this.dictFilename = dictFilename;
+        this.freqFilename = freqFilename;
+        this.corpusFilename = corpusFilename;
+        this.stateFilename = stateFilename;
+    }
+
+    public boolean exists() throws IOException {
+        recover();
+        return new File(stateFilename).exists() && new File(dictFilename).exists() && new File(freqFilename).exists()
+                && new File(corpusFilename).exists();
+    }
+
+    public long getSourceOffset() {
+        return sourceOffset;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private static String tmp(String filename) {
+        return filename + ".tmp";
+    }
+
+    private static void move(String from, String to) throws IOException {
+        Files.move(Paths.get(from), Paths.get(to), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // finishes or rolls back an interrupted update
+    private void recover() throws IOException {
+        if (new File(tmp(stateFilename)).exists()) {
+            Files.deleteIfExists(Paths.get(tmp(dictFilename)));
+            Files.deleteIfExists(Paths.get(tmp(freqFilename)));
+            Files.delete(Paths.get(tmp(stateFilename)));
+            return;
+        }
+        if (new File(tmp(dictFilename)).exists()) {
+            move(tmp(dictFilename), dictFilename);
+        }
+        if (new File(tmp(freqFilename)).exists()) {
+            move(tmp(freqFilename), freqFilename);
+        }
+    }
+
+    public void loadState() throws IOException {
+        recover();
+        Properties state = new Properties();
+        try (InputStream is = new FileInputStream(stateFilename)) {
+            state.load(is);
+        }
+        sourceOffset = Long.parseLong(state.getProperty("sourceOffset"));
+        capacity = Integer.parseInt(state.getProperty("capacity"));
+        lines = Integer.parseInt(state.getProperty("lines"));
+        packedBytes = Long.parseLong(state.getProperty("packedBytes"));
+    }
+
+    public void load(Map<String, Double> dict, Map<Double, String> revDict, Map<String, Double> freq, List<List<Double>> corpus)
+            throws IOException {
+        loadState();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(dictFilename), StandardCharsets.UTF_8))) {
+            String word;
+            double idx = 0;
+            while ((word = br.readLine()) != null) {
+                dict.put(word, idx);
+                revDict.put(idx, word);
+                ++idx;
+            }
+        }
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(freqFilename), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int tab = line.lastIndexOf('\t');
+                freq.put(line.substring(0, tab), Double.valueOf(line.substring(tab + 1)));
+            }
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(corpusFilename)))) {
+            for (int i = 0; i < lines; ++i) {
+                int size = dis.readInt();
+                List<Double> row = new ArrayList<>(size);
+                for (int j = 0; j < size; ++j) {
+                    row.add((double) dis.readInt());
+                }
+                corpus.add(row);
+            }
+        }
+    }
+
+    /**
+     * Writes everything from scratch.
+     */
+    public void save(Map<Double, String> revDict, Map<String, Double> freq, List<List<Double>> corpus, long sourceOffset, int capacity)
+            throws IOException {
+        // the packed corpus is rewritten in place so there's no valid state until the end
+        recover();
+        Files.deleteIfExists(Paths.get(stateFilename));
+        this.capacity = capacity;
+        lines = 0;
+        packedBytes = 0;
+        writeCorpus(corpus, false);
+        update(revDict, freq, sourceOffset);
+    }
+
+    /**
+     * Appends the new lines to the packed corpus and rewrites the dictionary and the frequency table, both are bound by the number of
+     * distinct tokens and not by the corpus size.
+     */
+    public void append(Map<Double, String> revDict, Map<String, Double> freq, List<List<Double>> newLines, long sourceOffset)
+            throws IOException {
+        // drop the lines left by an interrupted update, if any
+        try (FileOutputStream fos = new FileOutputStream(corpusFilename, true)) {
+            fos.getChannel().truncate(packedBytes);
+        }
+        writeCorpus(newLines, true);
+        update(revDict, freq, sourceOffset);
+    }
+
+    private void writeCorpus(List<List<Double>> rows, boolean append) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(corpusFilename, append)))) {
+            for (List<Double> row : rows) {
+                dos.writeInt(row.size());
+                for (Double idx : row) {
+                    dos.writeInt(idx.intValue());
+                }
+            }
+            packedBytes += dos.size();
+        }
+        lines += rows.size();
+    }
+
+    private void update(Map<Double, String> revDict, Map<String, Double> freq, long sourceOffset) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp(dictFilename)), StandardCharsets.UTF_8))) {
+            for (double idx = 0; idx < revDict.size(); ++idx) {
+                bw.write(revDict.get(idx) + "\n");
+            }
+        }
+        try (BufferedWriter bw = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(tmp(freqFilename)), StandardCharsets.UTF_8))) {
+            for (Entry<String, Double> entry : freq.entrySet()) {
+                bw.write(entry.getKey() + "\t" + entry.getValue().longValue() + "\n");
+            }
+        }
+        this.sourceOffset = sourceOffset;
+        Properties state = new Properties();
+        state.setProperty("sourceOffset", String.valueOf(sourceOffset));
+        state.setProperty("capacity", String.valueOf(capacity));
+        state.setProperty("lines", String.valueOf(lines));
+        state.setProperty("packedBytes", String.valueOf(packedBytes));
+        try (OutputStream os = new FileOutputStream(tmp(stateFilename))) {
+            state.store(os, "dlchat corpus state");
+        }
+        move(tmp(stateFilename), stateFilename);
+        move(tmp(dictFilename), dictFilename);
+        move(tmp(freqFilename), freqFilename);
+    }
+
+}
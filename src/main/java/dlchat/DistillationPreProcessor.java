@@ -0,0 +1,41 @@
+package dlchat;
+
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.broadcast.BroadcastDivOp;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+@SuppressWarnings("serial")
+public class DistillationPreProcessor implements MultiDataSetPreProcessor {
+
+    /*
+     * Replaces the one-hot labels of every batch with the teacher output distributions softened with the given temperature. The teacher
+     * only gives us softmax(z), but softmax(z / T) is the same as softmax(z) ^ (1 / T) normalized so we don't need its pre-output.
+     */
+
+    private ComputationGraph teacher;
+    private double temperature;
+
+    public DistillationPreProcessor(ComputationGraph teacher, double temperature) {
+        this.teacher = teacher;
+        this.temperature = temperature;
+    }
+
+    @Override
+    public void preProcess(MultiDataSet multiDataSet) {
+        teacher.setLayerMaskArrays(multiDataSet.getFeaturesMaskArrays(), multiDataSet.getLabelsMaskArrays());
+        INDArray soft = teacher.output(false, multiDataSet.getFeatures())[0];
+        teacher.clearLayerMaskArrays();
+        if (temperature != 1.0) {
+            Transforms.pow(soft, 1.0 / temperature, false);
+            // normalize along the dictionary dimension, the shape is [batch, dict, time]
+            INDArray sum = soft.sum(1);
+            Nd4j.getExecutioner().exec(new BroadcastDivOp(soft, sum, soft, 0, 2));
+        }
+        multiDataSet.setLabels(0, soft);
+    }
+
+}
@@ -1,13 +1,16 @@
 package dlchat;
 
-import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -15,6 +18,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Properties;
 import java.util.Random;
 import java.util.Scanner;
 import java.util.Set;
@@ -29,11 +33,14 @@ import org.deeplearning4j.nn.conf.ComputationGraphConfiguration.GraphBuilder;
 import org.deeplearning4j.nn.conf.GradientNormalization;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.graph.LayerVertex;
 import org.deeplearning4j.nn.conf.graph.MergeVertex;
 import org.deeplearning4j.nn.conf.graph.rnn.DuplicateToTimeSeriesVertex;
 import org.deeplearning4j.nn.conf.graph.rnn.LastTimeStepVertex;
 import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.BaseOutputLayer;
 import org.deeplearning4j.nn.conf.layers.EmbeddingLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
 import org.deeplearning4j.nn.conf.layers.GravesLSTM;
 import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.graph.ComputationGraph;
@@ -42,9 +49,16 @@ import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
 import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.buffer.util.DataTypeUtil;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.lossfunctions.impl.LossMCXENT;
+import org.nd4j.linalg.ops.transforms.Transforms;
 
 public class EncoderDecoderLSTM {
 
@@ -103,15 +117,46 @@ public class EncoderDecoderLSTM {
      * updated for the next iteration. The result is fed to the output softmax layer and then we sample it randomly (not with argMax(), it
      * tends to give a lot of same tokens in a row). The resulting token is looked up in the dictionary, printed to the stdout and then it
      * goes to the next iteration as the decoder input and so on until we get <eos>.
+     * 
+     * Actually, CANDIDATES responses are generated this way at once. The thought vector is replicated to that many rows of the merge vertex
+     * input so they're decoded as a single batch which takes about the same time as one response. The generation stops when every row has
+     * produced <eos> and the response with the best log probability normalized by length is printed.
      *
-     * To continue the training process from a specific batch number, enter it when prompted; batch numbers are printed after each processed
-     * macrobatch. If you've changed the minibatch size after the last launch, recalculate the number accordingly, i.e. if you doubled the
-     * minibatch size, specify half of the value and so on.
+     * The line pairs are shuffled every epoch (see CorpusIterator). The run seed, the epoch and the batch number are saved to the state
+     * file together with the model so the training continues mid-epoch on exactly the same sequence of batches after a restart. To continue
+     * from a different batch number, enter it when prompted; batch numbers are printed after each processed macrobatch. If you've changed
+     * the minibatch size after the last launch, recalculate the number accordingly, i.e. if you doubled the minibatch size, specify half of
+     * the value and so on.
+     * 
+     * The processed corpus is kept on disk (see CorpusStore). If lines are appended to the corpus file, only the new lines are processed on
+     * the next start. The words that aren't in the dictionary yet get the next free indexes, the existing ones never change, so the model
+     * remains valid. The model reserves DICT_RESERVE extra rows for that when it's created, the models created before that are widened
+     * once when they're loaded (the existing rows are copied, the updater state is reset). Only the words seen at least NEW_WORD_MIN_FREQ
+     * times can take the reserved rows, the unused ones are never sampled. Note that the lines processed before keep <unk> for the words
+     * that are added later.
+     * 
+     * The model is too slow for CPU-only serving so a smaller student model can be trained to mimic it (knowledge distillation [3]). Run
+     * the program with the "distill" argument, the trained model is loaded as the teacher and its output distributions softened with
+     * DISTILL_TEMPERATURE replace the one-hot labels of the same batches (see DistillationPreProcessor and LossDistillation). The student
+     * has the same architecture but with the STUDENT_* widths, it's saved to STUDENT_MODEL_FILENAME. Each REPORT_EACH_MS the perplexity,
+     * the agreement with the teacher and the timings of both models are printed. Run with the "student" argument to talk to the student or
+     * to continue training it on the corpus itself, then its output loss is switched to the plain cross entropy (and back to the
+     * distillation loss with "distill").
+     * 
+     * Add the "profile" argument to record the time and memory spent in every vertex (see ProfilingListener), both in training and when
+     * generating responses. Use the "cpu" Maven profile (mvn -Pcpu ...) to run it on a machine without CUDA.
+     * 
+     * The minibatch size is limited by memory because the decoder input and the output are dictionary-wide. Set ACCUMULATE_MINIBATCHES to
+     * make the updates with gradients of several minibatches and HALF_PRECISION to halve the memory used by the activations; the latter
+     * does the updates on the host in FP32 and keeps 3 float arrays of the parameters size there. Both are checkpointed and resumed like
+     * the usual training.
      * 
      * [1] https://arxiv.org/abs/1506.05869 A Neural Conversational Model
      * 
      * [2] https://papers.nips.cc/paper/5346-sequence-to-sequence-learning-with-neural-networks.pdf Sequence to Sequence Learning with
      * Neural Networks
+     * 
+     * [3] https://arxiv.org/abs/1503.02531 Distilling the Knowledge in a Neural Network
      */
 
     public enum SaveState {
@@ -124,20 +169,40 @@ public class EncoderDecoderLSTM {
     private List<List<Double>> corpus = new ArrayList<>();
     private static final int HIDDEN_LAYER_WIDTH = 1024; // this is purely empirical, affects performance and VRAM requirement
     private static final int EMBEDDING_WIDTH = 128; // one-hot vectors will be embedded to more dense vectors with this width
+    private static final int STUDENT_HIDDEN_LAYER_WIDTH = 256; // same as above but for the distilled model
+    private static final int STUDENT_EMBEDDING_WIDTH = 64;
+    private static final double DISTILL_TEMPERATURE = 2.0; // higher values make the teacher distributions softer
+    private static final int REPORT_BATCHES = 10; // number of minibatches to compare the student and the teacher on
+    private static final int REPORT_LINES = 20; // number of lines to decode one by one to compare the student and the teacher latency
+    private static final int PROFILE_WINDOW = 100; // number of iterations to compute the percentiles over and to write the profile after
+    private static final String PROFILE_FILENAME = "profile"; // .json and .folded extensions are appended
     private static final String CORPUS_FILENAME = "movie_lines.txt"; // filename of data corpus to learn
     private static final String MODEL_FILENAME = "rnn_train_movies.zip"; // filename of the model
-    private static final String BACKUP_MODEL_FILENAME = "rnn_train_movies.bak.zip"; // filename of the previous version of the model (backup)
+    private static final String STUDENT_MODEL_FILENAME = "rnn_train_movies.student.zip"; // filename of the distilled model
+    private static final String BACKUP_SUFFIX = ".bak.zip"; // replaces .zip in the model filename for the previous version (backup)
     private static final String DICTIONARY_FILENAME = "dictionary.txt";
+    private static final String FREQ_FILENAME = "freq.txt"; // frequencies of all tokens seen in the corpus
+    private static final String PACKED_CORPUS_FILENAME = "corpus.bin"; // tokenized and indexed corpus
+    private static final String CORPUS_STATE_FILENAME = "corpus.properties";
+    private static final String MASTER_SUFFIX = ".master"; // replaces .zip in the model filename for the FP32 parameters
+    private static final String STATE_SUFFIX = ".state"; // replaces .zip in the model filename for the run seed, epoch and batch
     private static final int MINIBATCH_SIZE = 16;
     private static final Random rnd = new Random(new Date().getTime());
     private static final long SAVE_EACH_MS = TimeUnit.MINUTES.toMillis(10); // save the model with this period
     private static final long TEST_EACH_MS = TimeUnit.MINUTES.toMillis(1); // test the model with this period
+    private static final long REPORT_EACH_MS = TimeUnit.MINUTES.toMillis(30); // compare the student with the teacher with this period
     private static final int MAX_DICT = 40000; // this number of most frequent words will be used, unknown words (that are not in the
                                                // dictionary) are replaced with <unk> token
+    private static final int DICT_RESERVE = 5000; // indexes reserved in the model for the words that appear in the appended corpus lines
+    private static final int NEW_WORD_MIN_FREQ = 10; // the words from the appended lines get an index only if they're this frequent
     private static final double LEARNING_RATE = 1e-2;
+    private static final int ACCUMULATE_MINIBATCHES = 1; // gradients of this many minibatches are summed before each update (see
+                                                         // GradientAccumulator), the macrobatch size should be a multiple of it
+    private static final boolean HALF_PRECISION = false; // compute in FP16 keeping an FP32 master copy of the parameters, CUDA only
     private static final double RMS_DECAY = 0.95;
     private static final double L2 = 1e-5;
     private static final int ROW_SIZE = 20; // maximum line length in tokens
+    private static final int CANDIDATES = 8; // number of responses generated in parallel, the most probable one is printed
     private static final int GC_WINDOW = 500; // delay between garbage collections, try to reduce if you run out of VRAM or increase for
                                               // better performance
     private static final int MACROBATCH_SIZE = 20; // see CorpusIterator
@@ -145,13 +210,28 @@ public class EncoderDecoderLSTM {
     private SaveState saveState = SaveState.NONE;
     private static final boolean SAVE_ON_EXIT = true;
     private ComputationGraph net;
+    private ComputationGraph teacher; // only set in the distillation mode
+    private ProfilingListener profiler; // only set in the profiling mode
+    private GradientAccumulator accumulator; // only used with gradient accumulation or half precision
+    private int savedIterationCount = -1; // of the loaded model before it's changed by the user, to check the master parameters
+    private long seed = rnd.nextLong(); // the shuffle seed of this training run, restored from the state file if it exists
+    private int epoch = 1;
+    private int dictCapacity = 0; // the token vectors width, it's the dictionary size plus the reserve for the new words
+    private final CorpusStore corpusStore = new CorpusStore(toTempPath(DICTIONARY_FILENAME), toTempPath(FREQ_FILENAME),
+            toTempPath(PACKED_CORPUS_FILENAME), toTempPath(CORPUS_STATE_FILENAME));
 
     public static void main(String[] args) throws Exception {
         new EncoderDecoderLSTM().run(args);
     }
 
     private void run(String[] args) throws Exception {
-        File networkFile = new File(toTempPath(MODEL_FILENAME));
+        List<String> modes = Arrays.asList(args);
+        boolean distill = modes.contains("distill");
+        boolean student = distill || modes.contains("student");
+        if (modes.contains("profile")) {
+            profiler = new ProfilingListener(PROFILE_WINDOW, toTempPath(PROFILE_FILENAME));
+        }
+        File networkFile = new File(toTempPath(student ? STUDENT_MODEL_FILENAME : MODEL_FILENAME));
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
@@ -170,14 +250,42 @@ public class EncoderDecoderLSTM {
             }
         });
         Nd4j.getMemoryManager().setAutoGcWindow(GC_WINDOW);
+        if (HALF_PRECISION) {
+            // it should be set before any array is created
+            DataTypeUtil.setDTypeForContext(DataBuffer.Type.HALF);
+        }
 
-        createDictionary();
-
-        int offset = 0;
+        if (distill) {
+            System.out.println("Loading the teacher network...");
+            teacher = ModelSerializer.restoreComputationGraph(new File(toTempPath(MODEL_FILENAME)));
+            dictCapacity = getDictCapacity(teacher);
+        }
         if (networkFile.exists()) {
             System.out.println("Loading the existing network...");
             net = ModelSerializer.restoreComputationGraph(networkFile);
+            if (teacher != null && getDictCapacity(net) != dictCapacity) {
+                throw new IllegalStateException("The student dictionary capacity " + getDictCapacity(net)
+                        + " doesn't match the teacher capacity " + dictCapacity + ", remove " + networkFile);
+            }
+            dictCapacity = getDictCapacity(net);
+            if (student) {
+                // the saved student keeps the loss it was trained with last time, it should match the current mode
+                setOutputLoss(net, teacher != null ? new LossDistillation(DISTILL_TEMPERATURE) : new LossMCXENT());
+            }
+            if (profiler != null) {
+                profiler.attach(net);
+            }
+        }
+
+        createDictionary();
+
+        int offset = 0;
+        if (net != null) {
             offset = net.getConfiguration().getIterationCount();
+            savedIterationCount = offset;
+            // without the state file the batch number is the iteration count, otherwise they're independent
+            boolean legacyOffset = !siblingFile(networkFile, STATE_SUFFIX).exists();
+            offset = loadState(networkFile, offset);
             System.out.print("Enter d to start dialog or a number to continue training from that minibatch (press Enter to start from ["
                     + offset + "]: ");
             String input;
@@ -189,20 +297,86 @@ public class EncoderDecoderLSTM {
                     if (!input.isEmpty()) {
                         offset = Integer.valueOf(input);
                     }
-                    net.getConfiguration().setIterationCount(offset);
+                    if (legacyOffset) {
+                        net.getConfiguration().setIterationCount(offset);
+                    }
                     test();
                 }
             }
         } else {
             System.out.println("Creating a new network...");
-            createComputationGraph();
+            if (teacher != null) {
+                net = createComputationGraph(STUDENT_HIDDEN_LAYER_WIDTH, STUDENT_EMBEDDING_WIDTH, new LossDistillation(DISTILL_TEMPERATURE));
+            } else if (student) {
+                net = createComputationGraph(STUDENT_HIDDEN_LAYER_WIDTH, STUDENT_EMBEDDING_WIDTH, new LossMCXENT());
+            } else {
+                net = createComputationGraph(HIDDEN_LAYER_WIDTH, EMBEDDING_WIDTH, new LossMCXENT());
+            }
+            if (profiler != null) {
+                profiler.attach(net);
+            }
         }
         System.out.println("Number of parameters: " + net.numParams());
-        net.setListeners(new ScoreIterationListener(1));
+        if (profiler != null) {
+            net.setListeners(new ScoreIterationListener(1), profiler);
+        } else {
+            net.setListeners(new ScoreIterationListener(1));
+        }
         train(networkFile, offset);
     }
 
-    private void createComputationGraph() {
+    private void setOutputLoss(ComputationGraph model, ILossFunction lossFunction) {
+        // both the layer and the graph configuration are updated, the latter is what gets saved with the model
+        ((BaseOutputLayer) model.getLayer("output").conf().getLayer()).setLossFn(lossFunction);
+        ((BaseOutputLayer) ((LayerVertex) model.getConfiguration().getVertices().get("output")).getLayerConf().getLayer())
+                .setLossFn(lossFunction);
+    }
+
+    /**
+     * Rebuilds the network with the new token vectors width. The rows (columns for the output layer) of the existing tokens are copied, the
+     * rest is initialized as usual. The updater state is not copied so the first updates could be a bit rough.
+     */
+    private void widenDictionary(int newCapacity) {
+        System.out.println("Widening the model dictionary capacity from " + dictCapacity + " to " + newCapacity + "...");
+        ComputationGraph old = net;
+        int oldCapacity = dictCapacity;
+        int hiddenLayerWidth = ((FeedForwardLayer) old.getLayer("encoder").conf().getLayer()).getNOut();
+        int embeddingWidth = ((FeedForwardLayer) old.getLayer("embeddingEncoder").conf().getLayer()).getNOut();
+        ILossFunction lossFunction = ((BaseOutputLayer) old.getLayer("output").conf().getLayer()).getLossFn();
+        dictCapacity = newCapacity;
+        net = createComputationGraph(hiddenLayerWidth, embeddingWidth, lossFunction);
+        net.getConfiguration().setIterationCount(old.getConfiguration().getIterationCount());
+        // the embedding rows correspond to the tokens
+        copyParam(old, "embeddingEncoder", "W", new INDArrayIndex[] { NDArrayIndex.interval(0, oldCapacity), NDArrayIndex.all() },
+                new INDArrayIndex[] { NDArrayIndex.interval(0, oldCapacity), NDArrayIndex.all() });
+        net.getLayer("embeddingEncoder").getParam("b").assign(old.getLayer("embeddingEncoder").getParam("b"));
+        net.getLayer("encoder").params().assign(old.getLayer("encoder").params());
+        // the decoder input is the merge of the token one-hot and the thought vector
+        copyParam(old, "decoder", "W", new INDArrayIndex[] { NDArrayIndex.interval(0, oldCapacity), NDArrayIndex.all() },
+                new INDArrayIndex[] { NDArrayIndex.interval(0, oldCapacity), NDArrayIndex.all() });
+        copyParam(old, "decoder", "W",
+                new INDArrayIndex[] { NDArrayIndex.interval(newCapacity, newCapacity + hiddenLayerWidth), NDArrayIndex.all() },
+                new INDArrayIndex[] { NDArrayIndex.interval(oldCapacity, oldCapacity + hiddenLayerWidth), NDArrayIndex.all() });
+        net.getLayer("decoder").getParam("RW").assign(old.getLayer("decoder").getParam("RW"));
+        net.getLayer("decoder").getParam("b").assign(old.getLayer("decoder").getParam("b"));
+        // the output columns correspond to the tokens
+        INDArrayIndex[] columns = new INDArrayIndex[] { NDArrayIndex.all(), NDArrayIndex.interval(0, oldCapacity) };
+        copyParam(old, "output", "W", columns, columns);
+        copyParam(old, "output", "b", columns, columns);
+        if (profiler != null) {
+            profiler.attach(net);
+        }
+    }
+
+    private void copyParam(ComputationGraph old, String layer, String param, INDArrayIndex[] to, INDArrayIndex[] from) {
+        net.getLayer(layer).getParam(param).put(to, old.getLayer(layer).getParam(param).get(from));
+    }
+
+    private int getDictCapacity(ComputationGraph model) {
+        return ((FeedForwardLayer) model.getLayer("embeddingEncoder").conf().getLayer()).getNIn();
+    }
+
+    private ComputationGraph createComputationGraph(int hiddenLayerWidth, int embeddingWidth, ILossFunction lossFunction) {
         NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder();
         builder.iterations(1).learningRate(LEARNING_RATE).rmsDecay(RMS_DECAY)
                 .optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT).miniBatch(true).updater(Updater.RMSPROP)
@@ -211,34 +385,45 @@ public class EncoderDecoderLSTM {
 
         GraphBuilder graphBuilder = builder.graphBuilder().pretrain(false).backprop(true);
         graphBuilder.addInputs("inputLine", "decoderInput")
-                .setInputTypes(InputType.recurrent(dict.size()), InputType.recurrent(dict.size()))
-                .addLayer("embeddingEncoder", new EmbeddingLayer.Builder().nIn(dict.size()).nOut(EMBEDDING_WIDTH).build(), "inputLine")
+                .setInputTypes(InputType.recurrent(dictCapacity), InputType.recurrent(dictCapacity))
+                .addLayer("embeddingEncoder", new EmbeddingLayer.Builder().nIn(dictCapacity).nOut(embeddingWidth).build(), "inputLine")
                 .addLayer("encoder",
-                        new GravesLSTM.Builder().nIn(EMBEDDING_WIDTH).nOut(HIDDEN_LAYER_WIDTH).activation(Activation.TANH).build(),
+                        new GravesLSTM.Builder().nIn(embeddingWidth).nOut(hiddenLayerWidth).activation(Activation.TANH).build(),
                         "embeddingEncoder")
                 .addVertex("thoughtVector", new LastTimeStepVertex("inputLine"), "encoder")
                 .addVertex("dup", new DuplicateToTimeSeriesVertex("decoderInput"), "thoughtVector")
                 .addVertex("merge", new MergeVertex(), "decoderInput", "dup")
                 .addLayer("decoder",
-                        new GravesLSTM.Builder().nIn(dict.size() + HIDDEN_LAYER_WIDTH).nOut(HIDDEN_LAYER_WIDTH).activation(Activation.TANH)
+                        new GravesLSTM.Builder().nIn(dictCapacity + hiddenLayerWidth).nOut(hiddenLayerWidth).activation(Activation.TANH)
                                 .build(),
                         "merge")
-                .addLayer("output", new RnnOutputLayer.Builder().nIn(HIDDEN_LAYER_WIDTH).nOut(dict.size()).activation(Activation.SOFTMAX)
-                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "decoder")
+                .addLayer("output", new RnnOutputLayer.Builder().nIn(hiddenLayerWidth).nOut(dictCapacity).activation(Activation.SOFTMAX)
+                        .lossFunction(lossFunction).build(), "decoder")
                 .setOutputs("output");
 
-        net = new ComputationGraph(graphBuilder.build());
-        net.init();
+        ComputationGraph result = new ComputationGraph(graphBuilder.build());
+        result.init();
+        return result;
     }
 
     private void train(File networkFile, int offset) throws Exception {
         saveState = SaveState.READY;
         long lastSaveTime = System.currentTimeMillis();
         long lastTestTime = System.currentTimeMillis();
-        CorpusIterator logsIterator = new CorpusIterator(corpus, MINIBATCH_SIZE, MACROBATCH_SIZE, dict.size(), ROW_SIZE);
-        for (int epoch = 1; epoch < 10000; ++epoch) {
+        long lastReportTime = System.currentTimeMillis();
+        CorpusIterator logsIterator = new CorpusIterator(corpus, MINIBATCH_SIZE, MACROBATCH_SIZE, dictCapacity, ROW_SIZE, seed);
+        if (ACCUMULATE_MINIBATCHES > 1 || HALF_PRECISION) {
+            accumulator = new GradientAccumulator(net, ACCUMULATE_MINIBATCHES, HALF_PRECISION, LEARNING_RATE, RMS_DECAY, L2);
+            accumulator.loadMaster(siblingFile(networkFile, MASTER_SUFFIX), savedIterationCount);
+        }
+        if (teacher != null) {
+            logsIterator.setPreProcessor(new DistillationPreProcessor(teacher, DISTILL_TEMPERATURE));
+        }
+        int startEpoch = epoch;
+        for (; epoch < 10000; ++epoch) {
             System.out.println("Epoch " + epoch);
-            if (epoch == 1) {
+            logsIterator.setEpoch(epoch);
+            if (epoch == startEpoch) {
                 logsIterator.setCurrentBatch(offset);
             } else {
                 logsIterator.reset();
@@ -246,7 +431,14 @@ public class EncoderDecoderLSTM {
             int lastPerc = 0;
             while (logsIterator.hasNextMacrobatch()) {
                 long t1 = System.currentTimeMillis();
-                net.fit(logsIterator);
+                if (profiler != null) {
+                    profiler.setContext("fit");
+                }
+                if (accumulator != null) {
+                    accumulator.fit(logsIterator);
+                } else {
+                    net.fit(logsIterator);
+                }
                 long t2 = System.currentTimeMillis();
                 int batch = logsIterator.batch();
                 System.out.println("Batch = " + batch + " / " + logsIterator.totalBatches() + " time = " + (t2 - t1));
@@ -268,6 +460,11 @@ public class EncoderDecoderLSTM {
                     test();
                     lastTestTime = System.currentTimeMillis();
                 }
+                // it takes much longer than the test so it's done less often
+                if (teacher != null && System.currentTimeMillis() - lastReportTime > REPORT_EACH_MS) {
+                    distillationReport();
+                    lastReportTime = System.currentTimeMillis();
+                }
             }
         }
     }
@@ -311,7 +508,7 @@ public class EncoderDecoderLSTM {
         saveState = SaveState.SAVING;
         System.out.println("Saving the model...");
         System.gc();
-        File backup = new File(toTempPath(BACKUP_MODEL_FILENAME));
+        File backup = siblingFile(networkFile, BACKUP_SUFFIX);
         if (networkFile.exists()) {
             if (backup.exists()) {
                 backup.delete();
@@ -319,11 +516,56 @@ public class EncoderDecoderLSTM {
             networkFile.renameTo(backup);
         }
         ModelSerializer.writeModel(net, networkFile, true);
+        File masterFile = siblingFile(networkFile, MASTER_SUFFIX);
+        if (accumulator != null && accumulator.hasMaster()) {
+            accumulator.saveMaster(masterFile, net.getConfiguration().getIterationCount());
+        } else if (masterFile.exists()) {
+            // it's older than the model now and must never be restored
+            masterFile.delete();
+        }
+        saveState(networkFile, batch);
         System.gc();
         System.out.println("Done.");
         saveState = SaveState.READY;
     }
 
+    private File siblingFile(File networkFile, String suffix) {
+        return new File(networkFile.getPath().replaceFirst("\\.zip$", suffix));
+    }
+
+    private void saveState(File networkFile, int batch) throws IOException {
+        Properties state = new Properties();
+        state.setProperty("seed", String.valueOf(seed));
+        state.setProperty("epoch", String.valueOf(epoch));
+        state.setProperty("batch", String.valueOf(batch));
+        state.setProperty("corpusSize", String.valueOf(corpus.size()));
+        try (OutputStream os = new FileOutputStream(siblingFile(networkFile, STATE_SUFFIX))) {
+            state.store(os, "dlchat training state");
+        }
+    }
+
+    // returns the batch to continue from, or the provided default if there's no state file (models saved before it was introduced)
+    private int loadState(File networkFile, int defaultBatch) throws IOException {
+        File stateFile = siblingFile(networkFile, STATE_SUFFIX);
+        if (!stateFile.exists()) {
+            return defaultBatch;
+        }
+        Properties state = new Properties();
+        try (InputStream is = new FileInputStream(stateFile)) {
+            state.load(is);
+        }
+        seed = Long.parseLong(state.getProperty("seed"));
+        epoch = Integer.parseInt(state.getProperty("epoch"));
+        System.out.println("Restored the training state: seed " + seed + ", epoch " + epoch);
+        if (Integer.parseInt(state.getProperty("corpusSize", "0")) != corpus.size()) {
+            // the shuffled order depends on the corpus size so the saved position is meaningless if new lines were added
+            ++epoch;
+            System.out.println("The corpus has changed, starting epoch " + epoch);
+            return 0;
+        }
+        return Integer.parseInt(state.getProperty("batch"));
+    }
+
     private void test() {
         System.out.println("======================== TEST ========================");
         int selected = rnd.nextInt(corpus.size());
@@ -338,48 +580,202 @@ public class EncoderDecoderLSTM {
         System.out.println("====================== TEST END ======================");
     }
 
+    private void distillationReport() {
+        // epoch 0 is never used for training so these batches are shuffled differently
+        CorpusIterator reportIterator = new CorpusIterator(corpus, MINIBATCH_SIZE, REPORT_BATCHES, dictCapacity, ROW_SIZE, seed);
+        double teacherLoss = 0;
+        double studentLoss = 0;
+        double agreed = 0;
+        double tokens = 0;
+        long teacherTime = 0;
+        long studentTime = 0;
+        // the student forwards and decodes are profiled separately from the dialog responses
+        if (profiler != null) {
+            profiler.setContext("report");
+        }
+        while (reportIterator.hasNext()) {
+            MultiDataSet batch = reportIterator.next();
+            INDArray mask = batch.getLabelsMaskArray(0);
+            long t1 = System.nanoTime();
+            INDArray teacherOut = outputBatch(teacher, batch);
+            long t2 = System.nanoTime();
+            INDArray studentOut = outputBatch(net, batch);
+            long t3 = System.nanoTime();
+            if (profiler != null) {
+                profiler.endIteration();
+            }
+            teacherTime += t2 - t1;
+            studentTime += t3 - t2;
+            teacherLoss += crossEntropy(batch.getLabels(0), teacherOut, mask);
+            studentLoss += crossEntropy(batch.getLabels(0), studentOut, mask);
+            agreed += Nd4j.argMax(teacherOut, 1).eqi(Nd4j.argMax(studentOut, 1)).muli(mask).sumNumber().doubleValue();
+            tokens += mask.sumNumber().doubleValue();
+        }
+        int teacherTokens = 0;
+        int studentTokens = 0;
+        long teacherDecodeTime = 0;
+        long studentDecodeTime = 0;
+        for (int i = 0; i < REPORT_LINES; ++i) {
+            List<Double> rowIn = corpus.get(rnd.nextInt(corpus.size()));
+            long t1 = System.nanoTime();
+            teacherTokens += decode(teacher, new ArrayList<>(rowIn), 1).size();
+            long t2 = System.nanoTime();
+            studentTokens += decode(net, new ArrayList<>(rowIn), 1).size();
+            long t3 = System.nanoTime();
+            teacherDecodeTime += t2 - t1;
+            studentDecodeTime += t3 - t2;
+        }
+        System.out.println("Parameters: teacher = " + teacher.numParams() + " student = " + net.numParams());
+        System.out.println(String.format("Perplexity: teacher = %.2f student = %.2f, agreement = %.1f%%", Math.exp(teacherLoss / tokens),
+                Math.exp(studentLoss / tokens), agreed * 100 / tokens));
+        System.out.println(String.format("Batch forward, ms: teacher = %.1f student = %.1f", teacherTime / 1e6 / REPORT_BATCHES,
+                studentTime / 1e6 / REPORT_BATCHES));
+        System.out.println(String.format("Decode per token, ms: teacher = %.2f student = %.2f", teacherDecodeTime / 1e6 / teacherTokens,
+                studentDecodeTime / 1e6 / studentTokens));
+    }
+
+    private INDArray outputBatch(ComputationGraph model, MultiDataSet batch) {
+        model.setLayerMaskArrays(batch.getFeaturesMaskArrays(), batch.getLabelsMaskArrays());
+        INDArray result = model.output(false, batch.getFeatures())[0];
+        model.clearLayerMaskArrays();
+        return result;
+    }
+
+    // sum of the token cross entropies, the arrays are [batch, dict, time] and the mask is [batch, time]
+    private double crossEntropy(INDArray labels, INDArray output, INDArray mask) {
+        INDArray logOutput = Transforms.log(Transforms.max(output, 1e-10), false);
+        return -logOutput.muli(labels).sum(1).muli(mask).sumNumber().doubleValue();
+    }
+
     private void output(List<Double> rowIn, boolean printUnknowns) {
-        net.rnnClearPreviousState();
+        if (profiler != null) {
+            profiler.setContext("decode");
+        }
+        for (int idx : decode(net, rowIn, CANDIDATES)) {
+            if (printUnknowns || idx != 0) {
+                System.out.print(revDict.get((double) idx) + " ");
+            }
+        }
+        System.out.println();
+    }
+
+    // returns the sampled token indexes of the best candidate including the final <eos>, if any; rowIn is reversed in place
+    private List<Integer> decode(ComputationGraph model, List<Double> rowIn, int candidates) {
+        // the profiler context is set by the caller
+        ProfilingListener profiler = model == net ? this.profiler : null;
+        model.rnnClearPreviousState();
         Collections.reverse(rowIn);
         INDArray in = Nd4j.create(ArrayUtils.toPrimitive(rowIn.toArray(new Double[0])), new int[] { 1, 1, rowIn.size() });
-        double[] decodeArr = new double[dict.size()];
+        double[] decodeArr = new double[dictCapacity];
         decodeArr[2] = 1;
-        INDArray decode = Nd4j.create(decodeArr, new int[] { 1, dict.size(), 1 });
-        net.feedForward(new INDArray[] { in, decode }, false);
-        org.deeplearning4j.nn.layers.recurrent.GravesLSTM decoder = (org.deeplearning4j.nn.layers.recurrent.GravesLSTM) net
+        INDArray decode = Nd4j.create(decodeArr, new int[] { 1, dictCapacity, 1 });
+        model.feedForward(new INDArray[] { in, decode }, false);
+        org.deeplearning4j.nn.layers.recurrent.GravesLSTM decoder = (org.deeplearning4j.nn.layers.recurrent.GravesLSTM) model
                 .getLayer("decoder");
-        Layer output = net.getLayer("output");
-        GraphVertex mergeVertex = net.getVertex("merge");
-        INDArray thoughtVector = mergeVertex.getInputs()[1];
-        for (int row = 0; row < ROW_SIZE; ++row) {
+        Layer output = model.getLayer("output");
+        GraphVertex mergeVertex = model.getVertex("merge");
+        // every candidate is a row of the same batch, they share the thought vector and start with <go>
+        INDArray[] thoughtVectors = new INDArray[candidates];
+        Arrays.fill(thoughtVectors, mergeVertex.getInputs()[1]);
+        INDArray thoughtVector = Nd4j.concat(0, thoughtVectors);
+        decode = Nd4j.zeros(candidates, dictCapacity, 1);
+        for (int c = 0; c < candidates; ++c) {
+            decode.putScalar(new int[] { c, 2, 0 }, 1);
+        }
+        List<List<Integer>> results = new ArrayList<>();
+        for (int c = 0; c < candidates; ++c) {
+            results.add(new ArrayList<>());
+        }
+        double[] logProbs = new double[candidates];
+        boolean[] finished = new boolean[candidates];
+        int finishedCount = 0;
+        for (int row = 0; row < ROW_SIZE && finishedCount < candidates; ++row) {
+            if (profiler != null) {
+                profiler.begin();
+            }
             mergeVertex.setInputs(decode, thoughtVector);
             INDArray merged = mergeVertex.doForward(false);
+            if (profiler != null) {
+                profiler.lap("merge", "step");
+            }
             INDArray activateDec = decoder.rnnTimeStep(merged);
+            if (profiler != null) {
+                profiler.lap("decoder", "step");
+            }
             INDArray out = output.activate(activateDec, false);
-            double d = rnd.nextDouble();
-            double sum = 0.0;
-            int idx = -1;
-            for (int s = 0; s < out.size(1); s++) {
-                sum += out.getDouble(0, s, 0);
-                if (d <= sum) {
-                    idx = s;
-                    if (printUnknowns || s != 0) {
-                        System.out.print(revDict.get((double) s) + " ");
+            if (profiler != null) {
+                profiler.lap("output", "step");
+            }
+            // one copy of all the rows is much faster than getDouble() for every element
+            double[] probs = out.dup('c').data().asDouble();
+            decode = Nd4j.zeros(candidates, dictCapacity, 1);
+            for (int c = 0; c < candidates; ++c) {
+                int idx = 1;
+                if (!finished[c]) {
+                    // the reserved indexes that aren't assigned to any word yet are excluded, the rest is renormalized
+                    int base = c * dictCapacity;
+                    double total = 0.0;
+                    for (int s = 0; s < dict.size(); s++) {
+                        total += probs[base + s];
+                    }
+                    double d = rnd.nextDouble() * total;
+                    double sum = 0.0;
+                    for (int s = 0; s < dict.size(); s++) {
+                        sum += probs[base + s];
+                        if (d <= sum) {
+                            idx = s;
+                            break;
+                        }
+                    }
+                    results.get(c).add(idx);
+                    logProbs[c] += Math.log(probs[base + idx] / total);
+                    if (idx == 1) {
+                        finished[c] = true;
+                        ++finishedCount;
                     }
-                    break;
                 }
+                // the finished rows are still computed as a part of the batch but their output is ignored
+                decode.putScalar(new int[] { c, idx, 0 }, 1);
             }
-            if (idx == 1) {
-                break;
+            if (profiler != null) {
+                profiler.lap("sampling", "step");
             }
-            double[] newDecodeArr = new double[dict.size()];
-            newDecodeArr[idx] = 1;
-            decode = Nd4j.create(newDecodeArr, new int[] { 1, dict.size(), 1 });
         }
-        System.out.println();
+        if (profiler != null) {
+            profiler.endIteration();
+        }
+        // the log probability is normalized by length, otherwise the shortest responses would always win
+        int best = 0;
+        for (int c = 1; c < candidates; ++c) {
+            if (logProbs[c] / results.get(c).size() > logProbs[best] / results.get(best).size()) {
+                best = c;
+            }
+        }
+        return results.get(best);
     }
 
     private void createDictionary() throws IOException, FileNotFoundException {
+        // the file could be appended while we're processing it so only the complete lines up to this point are processed, both passes
+        // read exactly the same bytes and the rest is processed on the next start
+        String sourceFilename = toTempPath(CORPUS_FILENAME);
+        long sourceLength = new File(sourceFilename).length();
+        if (corpusStore.exists()) {
+            corpusStore.loadState();
+            if (corpusStore.getSourceOffset() <= sourceLength) {
+                updateDictionary(CorpusProcessor.lastLineEnd(sourceFilename, corpusStore.getSourceOffset(), sourceLength));
+                return;
+            }
+            if (net != null) {
+                // rebuilding would reorder the token indexes under the existing model
+                throw new IllegalStateException("The corpus file is shorter than the processed part (" + corpusStore.getSourceOffset()
+                        + " bytes), restore it or remove the model and the corpus state files to start over");
+            }
+            System.out.println("The corpus file is shorter than before, rebuilding the dictionary.");
+        }
+        buildDictionary(CorpusProcessor.lastLineEnd(sourceFilename, 0, sourceLength));
+    }
+
+    private void buildDictionary(long sourceEnd) throws IOException, FileNotFoundException {
         double idx = 3.0;
         dict.put("<unk>", 0.0);
         revDict.put(0.0, "<unk>");
@@ -395,10 +791,7 @@ public class EncoderDecoderLSTM {
             }
         }
         System.out.println("Building the dictionary...");
-        CorpusProcessor corpusProcessor = new CorpusProcessor(toTempPath(CORPUS_FILENAME), ROW_SIZE, true);
-        setupCorpusProcessor(corpusProcessor);
-        corpusProcessor.start();
-        Map<String, Double> freqs = corpusProcessor.getFreq();
+        Map<String, Double> freqs = countFrequencies(0, sourceEnd);
         Set<String> dictSet = new TreeSet<>(); // the tokens order is preserved for TreeSet
         Map<Double, Set<String>> freqMap = new TreeMap<>(new Comparator<Double>() {
 
@@ -429,21 +822,103 @@ public class EncoderDecoderLSTM {
             }
         }
         // all of the above means that the dictionary with the same MAX_DICT constraint and made from the same source file will always be
-        // the same, the tokens always correspond to the same number so we don't need to save/restore the dictionary
+        // the same, the tokens always correspond to the same number so the models made before the corpus store was introduced still work
         System.out.println("Dictionary is ready, size is " + dictSet.size());
         // index the dictionary and build the reverse dictionary for lookups
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(DICTIONARY_FILENAME))) {
-            for (String word : dictSet) {
-                bw.write(word + "\n");
-                if (!dict.containsKey(word)) {
-                    dict.put(word, idx);
-                    revDict.put(idx, word);
-                    ++idx;
-                }
+        for (String word : dictSet) {
+            if (!dict.containsKey(word)) {
+                dict.put(word, idx);
+                revDict.put(idx, word);
+                ++idx;
             }
         }
+        if (dictCapacity == 0) {
+            dictCapacity = dict.size() + DICT_RESERVE;
+        } else if (net != null && teacher == null && dictCapacity == dict.size()) {
+            // the model was created before the reserve was introduced
+            widenDictionary(dict.size() + DICT_RESERVE);
+        }
+        checkDictCapacity();
         System.out.println("Total dictionary size is " + dict.size() + ". Processing the dataset...");
-        corpusProcessor = new CorpusProcessor(toTempPath(CORPUS_FILENAME), ROW_SIZE, false) {
+        indexCorpus(0, sourceEnd, corpus);
+        corpusStore.save(revDict, freqs, corpus, sourceEnd, dictCapacity);
+        System.out.println("Done. Corpus size is " + corpus.size());
+    }
+
+    private void updateDictionary(long sourceEnd) throws IOException, FileNotFoundException {
+        Map<String, Double> freqs = new HashMap<>();
+        corpusStore.load(dict, revDict, freqs, corpus);
+        if (dictCapacity == 0) {
+            dictCapacity = corpusStore.getCapacity();
+        }
+        long sourceOffset = corpusStore.getSourceOffset();
+        if (sourceOffset == sourceEnd) {
+            checkDictCapacity();
+            System.out.println("Loaded the dictionary of size " + dict.size() + " and the corpus of size " + corpus.size());
+            return;
+        }
+        System.out.println("Processing " + (sourceEnd - sourceOffset) + " new bytes of the corpus...");
+        Map<String, Double> newFreqs = countFrequencies(sourceOffset, sourceEnd);
+        List<String> newWords = new ArrayList<>();
+        for (Entry<String, Double> entry : newFreqs.entrySet()) {
+            Double count = freqs.get(entry.getKey());
+            freqs.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+            // the total count is checked so the words that were too rare before can make it with the new lines
+            if (!dict.containsKey(entry.getKey()) && freqs.get(entry.getKey()) >= NEW_WORD_MIN_FREQ) {
+                newWords.add(entry.getKey());
+            }
+        }
+        // the most frequent new words take the free indexes, the same frequency words are sorted alphabetically like in buildDictionary()
+        Collections.sort(newWords, new Comparator<String>() {
+
+            @Override
+            public int compare(String o1, String o2) {
+                int result = Double.compare(freqs.get(o2), freqs.get(o1));
+                if (result != 0) {
+                    return result;
+                }
+                return o1.compareTo(o2);
+            }
+        });
+        double idx = dict.size();
+        int skipped = 0;
+        for (String word : newWords) {
+            if (dict.size() >= dictCapacity) {
+                ++skipped;
+                continue;
+            }
+            dict.put(word, idx);
+            revDict.put(idx, word);
+            ++idx;
+        }
+        checkDictCapacity();
+        System.out.println("Dictionary size is " + dict.size() + " of " + dictCapacity);
+        if (skipped > 0) {
+            System.out.println(skipped + " new words didn't fit the dictionary capacity and will be replaced with <unk>");
+        }
+        List<List<Double>> newLines = new ArrayList<>();
+        indexCorpus(sourceOffset, sourceEnd, newLines);
+        corpusStore.append(revDict, freqs, newLines, sourceEnd);
+        corpus.addAll(newLines);
+        System.out.println("Done. Added " + newLines.size() + " lines, corpus size is " + corpus.size());
+    }
+
+    private void checkDictCapacity() {
+        if (dict.size() > dictCapacity) {
+            throw new IllegalStateException(
+                    "The dictionary size " + dict.size() + " exceeds the model capacity " + dictCapacity + ", remove the corpus state files");
+        }
+    }
+
+    private Map<String, Double> countFrequencies(long sourceOffset, long sourceEnd) throws IOException, FileNotFoundException {
+        CorpusProcessor corpusProcessor = new CorpusProcessor(toTempPath(CORPUS_FILENAME), sourceOffset, sourceEnd, ROW_SIZE, true);
+        setupCorpusProcessor(corpusProcessor);
+        corpusProcessor.start();
+        return corpusProcessor.getFreq();
+    }
+
+    private void indexCorpus(long sourceOffset, long sourceEnd, List<List<Double>> result) throws IOException, FileNotFoundException {
+        CorpusProcessor corpusProcessor = new CorpusProcessor(toTempPath(CORPUS_FILENAME), sourceOffset, sourceEnd, ROW_SIZE, false) {
             @Override
             protected void processLine(String lastLine) {
                 ArrayList<String> words = new ArrayList<>();
@@ -451,7 +926,7 @@ public class EncoderDecoderLSTM {
                 if (!words.isEmpty()) {
                     List<Double> wordIdxs = new ArrayList<>();
                     if (wordsToIndexes(words, wordIdxs)) {
-                        corpus.add(wordIdxs);
+                        result.add(wordIdxs);
                     }
                 }
             }
@@ -459,7 +934,6 @@ public class EncoderDecoderLSTM {
         setupCorpusProcessor(corpusProcessor);
         corpusProcessor.setDict(dict);
         corpusProcessor.start();
-        System.out.println("Done. Corpus size is " + corpus.size());
     }
 
     private void setupCorpusProcessor(CorpusProcessor corpusProcessor) {
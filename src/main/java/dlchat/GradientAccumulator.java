@@ -0,0 +1,311 @@
+package dlchat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+import org.bytedeco.javacpp.indexer.HalfIndexer;
+
+import org.deeplearning4j.datasets.iterator.AsyncMultiDataSetIterator;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.deeplearning4j.optimize.api.IterationListener;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.concurrency.AffinityManager;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class GradientAccumulator {
+
+    /*
+     * Replaces ComputationGraph.fit() so that the gradients of several minibatches are summed before each RMSProp update. The effective
+     * batch size is minibatches * minibatch size but only one minibatch is in memory at a time. The sum is passed to the updater with the
+     * total number of examples so it's averaged the same way as a single large minibatch would be.
+     *
+     * The pending gradient is always applied at the end of fit(iterator), i.e. at the end of a macrobatch, so a checkpoint never loses a
+     * part of it and the saved batch number stays exact. Make the macrobatch size a multiple of the number of minibatches to keep all the
+     * updates equal.
+     *
+     * With the master copy enabled (meant for the half precision data type) the parameters, the gradient sum and the RMSProp cache are
+     * float arrays on the host and the update is done there instead of the network updater: in FP16 the sum over the examples easily
+     * exceeds the range (65504), the RMSProp epsilon (1e-8) rounds to zero so the parameters with no gradient get NaN steps, and the small
+     * steps are lost when added to the parameters. It does what the updater does with the network configuration: the per-layer L2
+     * renormalization, RMSProp, the L2 regularization of the non-bias parameters and the division by the number of examples. The network
+     * parameters are then overwritten with the master copy. The gradient and the parameters are transferred with one host copy of the
+     * whole buffer each way, and the host arrays are allocated once and reused.
+     *
+     * There's no loss scaling so the gradients that underflow in the FP16 backward pass are lost. If the sum or the step contains inf or
+     * NaN (an overflow in the backward pass) the update is skipped. The time spent on the host is printed for every macrobatch so it can
+     * be compared with the macrobatch time of the usual fit().
+     */
+
+    private static final float RMS_EPSILON = 1e-8f; // the updater default
+
+    private ComputationGraph net;
+    private int minibatches;
+    private float learningRate;
+    private float rmsDecay;
+    private float l2;
+    private float[] master;
+    private float[] accumulatedHost; // the gradient sum in the master copy mode, the step after the update
+    private float[] rmsCache;
+    private List<int[]> layerRanges = new ArrayList<>(); // [from, to) of each layer in the flattened parameters
+    private List<int[]> regularizedRanges = new ArrayList<>(); // the same for each non-bias parameter
+    private INDArray accumulated; // the gradient sum otherwise
+    private int accumulatedMinibatches = 0;
+    private int accumulatedExamples = 0;
+    private long hostNanos = 0;
+
+    public GradientAccumulator(ComputationGraph net, int minibatches, boolean masterCopy, double learningRate, double rmsDecay,
+            double l2) {
+        this.net = net;
+        this.minibatches = minibatches;
+        this.learningRate = (float) learningRate;
+        this.rmsDecay = (float) rmsDecay;
+        this.l2 = (float) l2;
+        if (masterCopy) {
+            master = new float[net.numParams()];
+            accumulatedHost = new float[master.length];
+            rmsCache = new float[master.length];
+            toHost(net.params(), master);
+            // the parameter views are intervals of the flattened array, the keys are "layer_param"
+            Map<String, int[]> layers = new LinkedHashMap<>();
+            for (Entry<String, INDArray> entry : net.paramTable().entrySet()) {
+                int from = (int) entry.getValue().offset();
+                int to = from + entry.getValue().length();
+                String key = entry.getKey();
+                String layer = key.substring(0, key.lastIndexOf('_'));
+                int[] range = layers.get(layer);
+                if (range == null) {
+                    layers.put(layer, new int[] { from, to });
+                } else {
+                    range[0] = Math.min(range[0], from);
+                    range[1] = Math.max(range[1], to);
+                }
+                if (!key.endsWith("_" + DefaultParamInitializer.BIAS_KEY)) {
+                    regularizedRanges.add(new int[] { from, to });
+                }
+            }
+            layerRanges.addAll(layers.values());
+        } else {
+            accumulated = Nd4j.zeros(net.params().shape());
+        }
+    }
+
+    public boolean hasMaster() {
+        return master != null;
+    }
+
+    public void fit(MultiDataSetIterator iterator) {
+        if (iterator.asyncSupported()) {
+            iterator = new AsyncMultiDataSetIterator(iterator, 2);
+        }
+        hostNanos = 0;
+        while (iterator.hasNext()) {
+            fit(iterator.next());
+        }
+        update();
+        if (master != null) {
+            System.out.println("Host gradient copies and updates time = " + TimeUnit.NANOSECONDS.toMillis(hostNanos));
+        }
+    }
+
+    public void fit(MultiDataSet multiDataSet) {
+        net.setInputs(multiDataSet.getFeatures());
+        net.setLabels(multiDataSet.getLabels());
+        net.setLayerMaskArrays(multiDataSet.getFeaturesMaskArrays(), multiDataSet.getLabelsMaskArrays());
+        net.computeGradientAndScore();
+        net.clearLayerMaskArrays();
+        // the gradient array is reused by the network on every pass
+        INDArray gradient = net.gradient().gradient();
+        if (master == null) {
+            accumulated.addi(gradient);
+        } else {
+            long t = System.nanoTime();
+            addToHost(gradient, accumulatedHost);
+            hostNanos += System.nanoTime() - t;
+        }
+        ++accumulatedMinibatches;
+        accumulatedExamples += multiDataSet.getFeatures(0).size(0);
+        if (accumulatedMinibatches >= minibatches) {
+            update();
+        }
+    }
+
+    private void update() {
+        if (accumulatedMinibatches == 0) {
+            return;
+        }
+        int iteration = net.getConfiguration().getIterationCount();
+        if (master == null) {
+            Gradient gradient = net.gradient();
+            gradient.gradient().assign(accumulated);
+            // the updater modifies the gradient in place, it becomes the step to subtract
+            net.getUpdater().update(net, gradient, iteration, accumulatedExamples);
+            net.params().subi(gradient.gradient());
+            accumulated.assign(0);
+        } else {
+            long t = System.nanoTime();
+            boolean finite = isFinite(accumulatedHost);
+            if (finite) {
+                hostStep();
+                // the step is checked as well before it reaches the master copy
+                finite = isFinite(accumulatedHost);
+            }
+            if (finite) {
+                for (int i = 0; i < master.length; ++i) {
+                    master[i] -= accumulatedHost[i];
+                }
+                fromHost(master, net.params());
+            } else {
+                System.out.println("The gradient overflowed at iteration " + iteration + ", skipping the update");
+            }
+            hostNanos += System.nanoTime() - t;
+        }
+        if (accumulatedHost != null) {
+            Arrays.fill(accumulatedHost, 0);
+        }
+        // the iteration count is still the number of minibatches, it's used as the batch number to continue from
+        iteration += accumulatedMinibatches;
+        net.getConfiguration().setIterationCount(iteration);
+        for (IterationListener listener : net.getListeners()) {
+            listener.iterationDone(net, iteration);
+        }
+        accumulatedMinibatches = 0;
+        accumulatedExamples = 0;
+    }
+
+    // replaces the gradient sum with the step to subtract
+    private void hostStep() {
+        float[] g = accumulatedHost;
+        for (int[] range : layerRanges) {
+            double sum = 0;
+            for (int i = range[0]; i < range[1]; ++i) {
+                sum += (double) g[i] * g[i];
+            }
+            float norm = (float) Math.sqrt(sum);
+            if (norm > 0) {
+                for (int i = range[0]; i < range[1]; ++i) {
+                    g[i] /= norm;
+                }
+            }
+        }
+        for (int i = 0; i < g.length; ++i) {
+            rmsCache[i] = rmsDecay * rmsCache[i] + (1 - rmsDecay) * g[i] * g[i];
+            g[i] = learningRate * g[i] / ((float) Math.sqrt(rmsCache[i]) + RMS_EPSILON);
+        }
+        for (int[] range : regularizedRanges) {
+            for (int i = range[0]; i < range[1]; ++i) {
+                g[i] += l2 * master[i];
+            }
+        }
+        float scale = 1.0f / accumulatedExamples;
+        for (int i = 0; i < g.length; ++i) {
+            g[i] *= scale;
+        }
+    }
+
+    // the whole buffer is synchronized to the host once and read through its NIO view
+    private static void addToHost(INDArray array, float[] target) {
+        ByteBuffer bytes = array.data().asNio().order(ByteOrder.nativeOrder());
+        if (array.data().dataType() == DataBuffer.Type.HALF) {
+            ShortBuffer halves = bytes.asShortBuffer();
+            for (int i = 0; i < target.length; ++i) {
+                target[i] += HalfIndexer.toFloat(halves.get(i));
+            }
+        } else {
+            FloatBuffer floats = bytes.asFloatBuffer();
+            for (int i = 0; i < target.length; ++i) {
+                target[i] += floats.get(i);
+            }
+        }
+    }
+
+    private static void toHost(INDArray array, float[] target) {
+        Arrays.fill(target, 0);
+        addToHost(array, target);
+    }
+
+    private static void fromHost(float[] source, INDArray array) {
+        ByteBuffer bytes = array.data().asNio().order(ByteOrder.nativeOrder());
+        if (array.data().dataType() == DataBuffer.Type.HALF) {
+            ShortBuffer halves = bytes.asShortBuffer();
+            for (int i = 0; i < source.length; ++i) {
+                halves.put(i, (short) HalfIndexer.fromFloat(source[i]));
+            }
+        } else {
+            bytes.asFloatBuffer().put(source);
+        }
+        // the device copy is stale now, it's updated from the host before the next use
+        Nd4j.getAffinityManager().tagLocation(array, AffinityManager.Location.HOST);
+    }
+
+    private static boolean isFinite(float[] values) {
+        for (float value : values) {
+            if (Float.isNaN(value) || Float.isInfinite(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The iteration count of the saved model is stored with the master copy and the RMSProp cache, they're only restored for the model
+     * with the same count.
+     */
+    public void saveMaster(File file, int iteration) throws IOException {
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            dos.writeInt(master.length);
+            dos.writeInt(iteration);
+            for (float param : master) {
+                dos.writeFloat(param);
+            }
+            for (float value : rmsCache) {
+                dos.writeFloat(value);
+            }
+        }
+    }
+
+    // the model file only has the FP16 parameters and updater state so the master copy is restored from its own file if it matches
+    public void loadMaster(File file, int iteration) throws IOException {
+        if (master == null || !file.exists()) {
+            return;
+        }
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            int length = dis.readInt();
+            int savedIteration = dis.readInt();
+            if (length != master.length || savedIteration != iteration) {
+                System.out.println("The master parameters in " + file + " don't match the network (" + length + " parameters at iteration "
+                        + savedIteration + "), ignoring them.");
+                return;
+            }
+            for (int i = 0; i < master.length; ++i) {
+                master[i] = dis.readFloat();
+            }
+            for (int i = 0; i < rmsCache.length; ++i) {
+                rmsCache[i] = dis.readFloat();
+            }
+        }
+        fromHost(master, net.params());
+    }
+
+}
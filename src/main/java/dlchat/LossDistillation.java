@@ -0,0 +1,88 @@
+package dlchat;
+
+import org.apache.commons.math3.util.Pair;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.transforms.SoftMax;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.ILossFunction;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+@SuppressWarnings("serial")
+public class LossDistillation implements ILossFunction {
+
+    /*
+     * Knowledge distillation loss as per [1]. The labels are the teacher output distributions softened with the same temperature (see
+     * DistillationPreProcessor). The student distribution is computed here from the pre-output divided by the temperature, the layer
+     * activation itself is ignored so the layer should stay SOFTMAX, then the model produces the regular (T = 1) distribution when it's
+     * used for the dialog.
+     *
+     * The loss is cross entropy multiplied by T^2 so that the gradient magnitude doesn't depend on the temperature.
+     *
+     * [1] https://arxiv.org/abs/1503.02531 Distilling the Knowledge in a Neural Network
+     */
+
+    private double temperature;
+
+    public LossDistillation() {
+        this(1.0);
+    }
+
+    public LossDistillation(double temperature) {
+        this.temperature = temperature;
+    }
+
+    public double getTemperature() {
+        return temperature;
+    }
+
+    private INDArray softmax(INDArray preOutput) {
+        return Nd4j.getExecutioner().execAndReturn(new SoftMax(preOutput.div(temperature)));
+    }
+
+    @Override
+    public INDArray computeScoreArray(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask) {
+        INDArray logOutput = Transforms.log(Transforms.max(softmax(preOutput), 1e-10, false), false);
+        INDArray scoreArr = logOutput.muli(labels).sum(1).muli(-temperature * temperature);
+        if (mask != null) {
+            scoreArr.muliColumnVector(mask);
+        }
+        return scoreArr;
+    }
+
+    @Override
+    public double computeScore(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask, boolean average) {
+        double score = computeScoreArray(labels, preOutput, activationFn, mask).sumNumber().doubleValue();
+        if (average) {
+            score /= labels.size(0);
+        }
+        return score;
+    }
+
+    @Override
+    public INDArray computeGradient(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask) {
+        // d(T^2 * CE(labels, softmax(z / T))) / dz = T * (softmax(z / T) - labels)
+        INDArray grad = softmax(preOutput).subi(labels).muli(temperature);
+        if (mask != null) {
+            grad.muliColumnVector(mask);
+        }
+        return grad;
+    }
+
+    @Override
+    public Pair<Double, INDArray> computeGradientAndScore(INDArray labels, INDArray preOutput, IActivation activationFn, INDArray mask,
+            boolean average) {
+        return new Pair<>(computeScore(labels, preOutput, activationFn, mask, average),
+                computeGradient(labels, preOutput, activationFn, mask));
+    }
+
+    public String name() {
+        return toString();
+    }
+
+    @Override
+    public String toString() {
+        return "LossDistillation(temperature=" + temperature + ")";
+    }
+
+}
@@ -0,0 +1,230 @@
+package dlchat;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.graph.vertex.GraphVertex;
+import org.deeplearning4j.optimize.api.IterationListener;
+
+@SuppressWarnings("serial")
+public class ProfilingListener implements IterationListener {
+
+    /*
+     * Records the wall time and the allocated bytes of every graph vertex for the forward and backward passes. There are no per-vertex
+     * hooks in ComputationGraph so attach() wraps the vertices it iterates over with proxies that measure doForward() and doBackward();
+     * the code that calls layers directly (like the decoding loop) measures itself with begin() and lap().
+     *
+     * The measurements are summed up per iteration (a minibatch for fit or a response for decode, see endIteration()) and the last
+     * windowSize sums are kept for every key. Each windowSize iterations the percentiles are written to a JSON file and the window totals
+     * are written in the collapsed stacks format ("context;pass;vertex value" lines) that flamegraph.pl and speedscope accept.
+     *
+     * Allocated bytes are the JVM heap allocated by the current thread plus the growth of the off-heap memory that JavaCPP tracks. The
+     * latter is process-wide so it includes the iterator prefetch thread and can be negative if a GC freed some buffers. Both are
+     * meaningful on the CPU backend only, with CUDA the device memory isn't counted.
+     */
+
+    private static class Window {
+        private long[] nanos;
+        private long[] bytes;
+        private int count = 0;
+        private long iterationNanos = 0;
+        private long iterationBytes = 0;
+        private boolean touched = false;
+
+        private Window(int size) {
+            nanos = new long[size];
+            bytes = new long[size];
+        }
+    }
+
+    private int windowSize;
+    private String reportFilename;
+    private String context = "fit";
+    private Map<String, Window> windows = new LinkedHashMap<>();
+    private int iterations = 0;
+    private long lapNanos;
+    private long lapBytes;
+    private com.sun.management.ThreadMXBean threadBean;
+
+    public ProfilingListener(int windowSize, String reportFilename) {
+        this.windowSize = windowSize;
+        this.reportFilename = reportFilename;
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+        }
+    }
+
+    public void attach(ComputationGraph net) {
+        GraphVertex[] vertices = net.getVertices();
+        for (int i = 0; i < vertices.length; ++i) {
+            if (!vertices[i].isInputVertex() && !Proxy.isProxyClass(vertices[i].getClass())) {
+                vertices[i] = wrap(vertices[i]);
+            }
+        }
+    }
+
+    private GraphVertex wrap(GraphVertex vertex) {
+        return (GraphVertex) Proxy.newProxyInstance(GraphVertex.class.getClassLoader(), new Class<?>[] { GraphVertex.class },
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String pass = null;
+                        if (method.getName().equals("doForward")) {
+                            pass = "forward";
+                        } else if (method.getName().equals("doBackward")) {
+                            pass = "backward";
+                        }
+                        long t = System.nanoTime();
+                        long b = allocatedBytes();
+                        try {
+                            return method.invoke(vertex, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        } finally {
+                            if (pass != null) {
+                                record(vertex.getVertexName(), pass, System.nanoTime() - t, allocatedBytes() - b);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Sets the first part of the keys recorded from now on, i.e. "fit" or "decode".
+     */
+    public void setContext(String context) {
+        this.context = context;
+    }
+
+    public void begin() {
+        lapNanos = System.nanoTime();
+        lapBytes = allocatedBytes();
+    }
+
+    /**
+     * Records everything since the last begin() or lap() call and starts the next measurement.
+     */
+    public void lap(String name, String pass) {
+        long t = System.nanoTime();
+        long b = allocatedBytes();
+        record(name, pass, t - lapNanos, b - lapBytes);
+        lapNanos = System.nanoTime();
+        lapBytes = allocatedBytes();
+    }
+
+    private long allocatedBytes() {
+        long result = Pointer.totalBytes();
+        if (threadBean != null) {
+            result += threadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return result;
+    }
+
+    private void record(String name, String pass, long nanos, long bytes) {
+        String key = context + ";" + pass + ";" + name;
+        Window window = windows.get(key);
+        if (window == null) {
+            window = new Window(windowSize);
+            windows.put(key, window);
+        }
+        window.iterationNanos += nanos;
+        window.iterationBytes += bytes;
+        window.touched = true;
+    }
+
+    public void endIteration() {
+        for (Window window : windows.values()) {
+            if (window.touched) {
+                int pos = window.count % windowSize;
+                window.nanos[pos] = window.iterationNanos;
+                window.bytes[pos] = window.iterationBytes;
+                ++window.count;
+                window.iterationNanos = 0;
+                window.iterationBytes = 0;
+                window.touched = false;
+            }
+        }
+        if (++iterations % windowSize == 0) {
+            try {
+                writeReport();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.floor(p * sorted.length))];
+    }
+
+    private static long[] sortedWindow(long[] values, int count) {
+        long[] result = Arrays.copyOf(values, Math.min(count, values.length));
+        Arrays.sort(result);
+        return result;
+    }
+
+    public void writeReport() throws IOException {
+        StringBuilder json = new StringBuilder("{\n");
+        StringBuilder folded = new StringBuilder();
+        String delimiter = "";
+        for (Entry<String, Window> entry : windows.entrySet()) {
+            Window window = entry.getValue();
+            if (window.count == 0) {
+                continue;
+            }
+            long[] nanos = sortedWindow(window.nanos, window.count);
+            long[] bytes = sortedWindow(window.bytes, window.count);
+            long totalMicros = 0;
+            for (long n : nanos) {
+                totalMicros += n / 1000;
+            }
+            json.append(delimiter).append("  \"").append(entry.getKey()).append("\": { \"samples\": ").append(nanos.length);
+            json.append(", \"timeUs\": { \"p50\": ").append(percentile(nanos, 0.5) / 1000).append(", \"p90\": ")
+                    .append(percentile(nanos, 0.9) / 1000).append(", \"p99\": ").append(percentile(nanos, 0.99) / 1000)
+                    .append(", \"max\": ").append(nanos[nanos.length - 1] / 1000).append(" }");
+            json.append(", \"bytes\": { \"p50\": ").append(percentile(bytes, 0.5)).append(", \"p90\": ").append(percentile(bytes, 0.9))
+                    .append(", \"p99\": ").append(percentile(bytes, 0.99)).append(", \"max\": ").append(bytes[bytes.length - 1])
+                    .append(" } }");
+            delimiter = ",\n";
+            folded.append(entry.getKey()).append(' ').append(totalMicros).append('\n');
+        }
+        json.append("\n}\n");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(reportFilename + ".json"))) {
+            bw.write(json.toString());
+        }
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(reportFilename + ".folded"))) {
+            bw.write(folded.toString());
+        }
+        System.out.println("Profile written to " + reportFilename + ".json and " + reportFilename + ".folded");
+    }
+
+    @Override
+    public boolean invoked() {
+        return false;
+    }
+
+    @Override
+    public void invoke() {
+    }
+
+    @Override
+    public void iterationDone(Model model, int iteration) {
+        endIteration();
+    }
+
+}